@@ -1,15 +1,52 @@
-import java.util.HashSet;
-import java.util.Set;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class MaxNumberFromMatrix {
 
     private static final int SIZE = 3;
-    private static int[][] matrix;
-    private static boolean[][] visited;
-    private static long maxNumber = 0;
+    private static final int CELLS = SIZE * SIZE;
+    private static final int ALL_DIGITS = 0b11_1111_1110; // bits 1..9
+
+    // Grids per batch task; results are written back in input order chunk by chunk
+    private static final int CHUNK_SIZE = 4096;
+    private static final long INVALID = -1;
+
+    // Orthogonal neighbours of each cell, cells numbered row by row
+    private static final int[][] NEIGHBOURS = buildNeighbours();
+
+    // The 8 symmetries of the square (rotations and reflections) as cell index maps
+    private static final int[][] SYMMETRIES = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8},
+            {6, 3, 0, 7, 4, 1, 8, 5, 2},
+            {8, 7, 6, 5, 4, 3, 2, 1, 0},
+            {2, 5, 8, 1, 4, 7, 0, 3, 6},
+            {2, 1, 0, 5, 4, 3, 8, 7, 6},
+            {6, 7, 8, 3, 4, 5, 0, 1, 2},
+            {0, 3, 6, 1, 4, 7, 2, 5, 8},
+            {8, 5, 2, 7, 4, 1, 6, 3, 0}
+    };
+
+    private static final int[] FACTORIALS = {1, 1, 2, 6, 24, 120, 720, 5040, 40320, 362880};
 
     public static void main(String[] args) {
-        matrix = new int[][]{
+        if (args.length > 0) {
+            runBatch(args);
+            return;
+        }
+
+        int[][] matrix = new int[][]{
                 {5, 8, 3},
                 {9, 1, 7},
                 {4, 6, 2}
@@ -20,15 +57,183 @@ public class MaxNumberFromMatrix {
             return;
         }
 
+        int[] cells = new int[CELLS];
         for (int row = 0; row < SIZE; row++) {
-            for (int col = 0; col < SIZE; col++) {
-                visited = new boolean[SIZE][SIZE];
-                visited[row][col] = true;
-                findMaxNumber(row, col, String.valueOf(matrix[row][col]));
+            System.arraycopy(matrix[row], 0, cells, row * SIZE, SIZE);
+        }
+
+        System.out.println("Maximum number: " + solve(cells, 0));
+    }
+
+    // Batch mode: java MaxNumberFromMatrix <inputFile | -> [/bin]
+    // Text input holds one grid per line (9 digits, any other characters ignored),
+    // binary input holds 9 bytes per grid with values 1..9.
+    // One result per grid is written to stdout in input order ("invalid" for bad grids,
+    // "error" for grids whose chunk failed); errors are reported after all results are written.
+    private static void runBatch(String[] args) {
+        String inputPath = args[0];
+        boolean binary = false;
+
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("/bin")) {
+                binary = true;
+            } else {
+                System.out.println("Usage: java MaxNumberFromMatrix [<inputFile> | -] [/bin]");
+                return;
+            }
+        }
+
+        // Results by permutation rank of the canonical grid, 0 means "not computed yet"
+        AtomicLongArray cache = new AtomicLongArray(FACTORIALS[CELLS]);
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        ArrayDeque<Future<long[]>> pending = new ArrayDeque<>();
+        ArrayDeque<Integer> pendingCounts = new ArrayDeque<>();
+        int[] trailingBytes = new int[1];
+        String error = null;
+
+        try (InputStream in = new BufferedInputStream(inputPath.equals("-") ? System.in : new FileInputStream(inputPath), 1 << 16);
+             Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16)) {
+
+            try {
+                while (true) {
+                    int[] grids = new int[CHUNK_SIZE * CELLS];
+                    int count = binary ? readBinaryGrids(in, grids, trailingBytes) : readTextGrids(in, grids);
+                    if (count > 0) {
+                        pending.add(executor.submit(() -> solveChunk(grids, count, cache)));
+                        pendingCounts.add(count);
+                    }
+
+                    // Bound the number of chunks in flight and stream out finished ones in order
+                    while (pending.size() > workers * 2 || (!pending.isEmpty() && pending.peek().isDone())) {
+                        error = firstError(error, writeNextChunk(pending, pendingCounts, out));
+                    }
+                    if (count < CHUNK_SIZE) {
+                        break;
+                    }
+                }
+                if (trailingBytes[0] > 0) {
+                    error = firstError(error, "Truncated grid at end of input, " + trailingBytes[0] + " trailing bytes ignored");
+                }
+            } catch (IOException e) {
+                error = firstError(error, "Error reading input: " + e.getMessage());
             }
+
+            // Results already read are always written, even when the input ended badly
+            while (!pending.isEmpty()) {
+                error = firstError(error, writeNextChunk(pending, pendingCounts, out));
+            }
+        } catch (IOException e) {
+            error = firstError(error, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (error != null) {
+            System.err.println("Error processing batch: " + error);
         }
+    }
 
-        System.out.println("Maximum number: " + maxNumber);
+    // Writes the oldest chunk; a failed chunk is written as "error" lines so later results stay aligned
+    private static String writeNextChunk(ArrayDeque<Future<long[]>> pending, ArrayDeque<Integer> pendingCounts,
+                                         Writer out) throws IOException, InterruptedException {
+        Future<long[]> chunk = pending.poll();
+        int count = pendingCounts.poll();
+        try {
+            writeResults(chunk.get(), out);
+            return null;
+        } catch (ExecutionException e) {
+            for (int i = 0; i < count; i++) {
+                out.write("error\n");
+            }
+            return String.valueOf(e.getCause());
+        }
+    }
+
+    private static String firstError(String error, String next) {
+        return error != null ? error : next;
+    }
+
+    // Reads up to CHUNK_SIZE text grids; a line without exactly 9 digits becomes an all-zero (invalid) grid
+    private static int readTextGrids(InputStream in, int[] grids) throws IOException {
+        int count = 0;
+        int digits = 0;
+        boolean lineHasContent = false;
+        int c;
+
+        while (count < CHUNK_SIZE && (c = in.read()) != -1) {
+            if (c == '\n') {
+                if (lineHasContent) {
+                    finishTextGrid(grids, count++, digits);
+                }
+                digits = 0;
+                lineHasContent = false;
+            } else if (c >= '0' && c <= '9') {
+                if (digits < CELLS) {
+                    grids[count * CELLS + digits] = c - '0';
+                }
+                digits++;
+                lineHasContent = true;
+            } else if (!Character.isWhitespace(c)) {
+                lineHasContent = true;
+            }
+        }
+        if (lineHasContent && count < CHUNK_SIZE) {
+            finishTextGrid(grids, count++, digits);
+        }
+        return count;
+    }
+
+    private static void finishTextGrid(int[] grids, int index, int digits) {
+        if (digits != CELLS) {
+            Arrays.fill(grids, index * CELLS, (index + 1) * CELLS, 0);
+        }
+    }
+
+    // Reads up to CHUNK_SIZE binary grids of 9 bytes each; the size of an incomplete
+    // grid at the end of input is stored in trailingBytes[0] and the complete ones are returned
+    private static int readBinaryGrids(InputStream in, int[] grids, int[] trailingBytes) throws IOException {
+        int count = 0;
+        while (count < CHUNK_SIZE) {
+            for (int i = 0; i < CELLS; i++) {
+                int b = in.read();
+                if (b == -1) {
+                    trailingBytes[0] = i;
+                    return count;
+                }
+                grids[count * CELLS + i] = b;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static long[] solveChunk(int[] grids, int count, AtomicLongArray cache) {
+        long[] results = new long[count];
+        for (int i = 0; i < count; i++) {
+            int offset = i * CELLS;
+            if (!isValidGrid(grids, offset)) {
+                results[i] = INVALID;
+                continue;
+            }
+            int key = canonicalRank(grids, offset);
+            long result = cache.get(key);
+            if (result == 0) {
+                result = solve(grids, offset);
+                cache.set(key, result);
+            }
+            results[i] = result;
+        }
+        return results;
+    }
+
+    private static void writeResults(long[] results, Writer out) throws IOException {
+        for (long result : results) {
+            out.write(result == INVALID ? "invalid" : Long.toString(result));
+            out.write('\n');
+        }
     }
 
     private static boolean isValidMatrix(int[][] matrix) {
@@ -41,38 +246,87 @@ public class MaxNumberFromMatrix {
             }
         }
 
-        Set<Integer> numbers = new HashSet<>();
+        int seen = 0;
         for (int i = 0; i < SIZE; i++) {
             for (int j = 0; j < SIZE; j++) {
                 if (matrix[i][j] < 1 || matrix[i][j] > 9) {
                     return false;
                 }
-                if (!numbers.add(matrix[i][j])) {
-                    return false;
-                }
+                seen |= 1 << matrix[i][j];
             }
         }
-        return numbers.size() == 9;
+        return seen == ALL_DIGITS;
     }
 
-    private static void findMaxNumber(int row, int col, String currentNumber) {
-        maxNumber = Math.max(maxNumber, Long.parseLong(currentNumber));
+    private static boolean isValidGrid(int[] grids, int offset) {
+        int seen = 0;
+        for (int i = 0; i < CELLS; i++) {
+            int digit = grids[offset + i];
+            if (digit < 1 || digit > 9) {
+                return false;
+            }
+            seen |= 1 << digit;
+        }
+        return seen == ALL_DIGITS;
+    }
 
-        int[][] directions = {{0, 1}, {0, -1}, {1, 0}, {-1, 0}};
-        for (int[] dir : directions) {
-            int newRow = row + dir[0];
-            int newCol = col + dir[1];
-
-            if (isValid(newRow, newCol) && !visited[newRow][newCol]) {
-                visited[newRow][newCol] = true;
-                findMaxNumber(newRow, newCol, currentNumber + matrix[newRow][newCol]);
-                visited[newRow][newCol] = false;
+    // Smallest permutation rank among all rotations and reflections of the grid
+    private static int canonicalRank(int[] grids, int offset) {
+        int best = Integer.MAX_VALUE;
+        for (int[] symmetry : SYMMETRIES) {
+            int rank = 0;
+            int used = 0;
+            for (int i = 0; i < CELLS; i++) {
+                int digit = grids[offset + symmetry[i]];
+                int smallerUnused = (digit - 1) - Integer.bitCount(used & ((1 << digit) - 1));
+                rank += smallerUnused * FACTORIALS[CELLS - 1 - i];
+                used |= 1 << digit;
+            }
+            best = Math.min(best, rank);
+        }
+        return best;
+    }
+
+    private static long solve(int[] grids, int offset) {
+        long maxNumber = 0;
+        for (int cell = 0; cell < CELLS; cell++) {
+            maxNumber = Math.max(maxNumber, findMaxNumber(grids, offset, cell, 1 << cell, grids[offset + cell]));
+        }
+        return maxNumber;
+    }
+
+    private static long findMaxNumber(int[] grids, int offset, int cell, int visited, long currentNumber) {
+        long maxNumber = currentNumber;
+        for (int next : NEIGHBOURS[cell]) {
+            if ((visited & (1 << next)) == 0) {
+                maxNumber = Math.max(maxNumber, findMaxNumber(grids, offset, next, visited | (1 << next),
+                        currentNumber * 10 + grids[offset + next]));
             }
         }
+        return maxNumber;
     }
 
+    private static int[][] buildNeighbours() {
+        int[][] directions = {{0, 1}, {0, -1}, {1, 0}, {-1, 0}};
+        int[][] neighbours = new int[CELLS][];
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                int count = 0;
+                int[] cells = new int[directions.length];
+                for (int[] dir : directions) {
+                    int newRow = row + dir[0];
+                    int newCol = col + dir[1];
+                    if (isValid(newRow, newCol)) {
+                        cells[count++] = newRow * SIZE + newCol;
+                    }
+                }
+                neighbours[row * SIZE + col] = Arrays.copyOf(cells, count);
+            }
+        }
+        return neighbours;
+    }
 
     private static boolean isValid(int row, int col) {
         return row >= 0 && row < SIZE && col >= 0 && col < SIZE;
     }
-}
\ No newline at end of file
+}
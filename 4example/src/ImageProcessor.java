@@ -1,18 +1,25 @@
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
 
 public class ImageProcessor {
     private static final AtomicBoolean isCancelled = new AtomicBoolean(false);
     private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".gif"};
+    private static PipelineMetrics metrics = new PipelineMetrics(false, null);
 
     public static void main(String[] args) {
         // Start a thread to monitor for Esc key (simulated via console input)
@@ -32,7 +39,7 @@ public class ImageProcessor {
 
         // Validate command-line arguments
         if (args.length < 2) {
-            System.out.println("Usage: java ImageProcessor <sourceDir> [/sub] </s scale | /n | /r | /c targetDir>");
+            System.out.println("Usage: java ImageProcessor <sourceDir> [/sub] [/p] [/j metricsFile] </s scale | /n | /r | /c targetDir>");
             return;
         }
 
@@ -41,6 +48,8 @@ public class ImageProcessor {
         String operation = null;
         double scaleFactor = 0.0;
         String targetDir = null;
+        boolean printProgress = false;
+        String metricsFile = null;
 
         // Count operation flags to ensure exactly one is provided
         int operationCount = 0;
@@ -52,6 +61,23 @@ public class ImageProcessor {
                     return;
                 }
                 traverseSubdirs = true;
+            } else if (args[i].equals("/p")) {
+                if (printProgress) {
+                    System.out.println("Error: /p flag specified multiple times");
+                    return;
+                }
+                printProgress = true;
+            } else if (args[i].equals("/j")) {
+                if (metricsFile != null) {
+                    System.out.println("Error: /j flag specified multiple times");
+                    return;
+                }
+                if (i + 1 >= args.length) {
+                    System.out.println("Error: /j requires a metrics file");
+                    return;
+                }
+                metricsFile = args[i + 1];
+                i++;
             } else if (args[i].equals("/s")) {
                 if (operation != null) {
                     System.out.println("Error: Only one operation flag (/s, /n, /r, /c) can be specified");
@@ -127,12 +153,16 @@ public class ImageProcessor {
         }
 
         // Process files
+        metrics = new PipelineMetrics(printProgress, metricsFile);
         processDirectory(source, traverseSubdirs, operation, scaleFactor, targetDir);
     }
 
     private static void processDirectory(File sourceDir, boolean traverseSubdirs, String operation,
                                          double scaleFactor, String targetDir) {
-        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        metrics.start(executor.getQueue());
 
         try (Stream<Path> paths = traverseSubdirs ?
                 Files.walk(Paths.get(sourceDir.getAbsolutePath())) :
@@ -142,19 +172,22 @@ public class ImageProcessor {
                     .filter(path -> isImageFile(path.toString()))
                     .forEach(path -> {
                         if (isCancelled.get()) return;
+                        metrics.fileSubmitted();
                         executor.submit(() -> processFile(path.toFile(), operation, scaleFactor, targetDir));
+                        metrics.taskQueued();
                     });
         } catch (IOException e) {
             System.err.println("Error accessing directory: " + e.getMessage());
         } finally {
             executor.shutdown();
             try {
-                if (!executor.awaitTermination(60, java.util.concurrent.TimeUnit.SECONDS)) {
+                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
                     executor.shutdownNow();
                 }
             } catch (InterruptedException e) {
                 executor.shutdownNow();
             }
+            metrics.stop();
         }
     }
 
@@ -169,8 +202,13 @@ public class ImageProcessor {
     }
 
     private static void processFile(File file, String operation, double scaleFactor, String targetDir) {
-        if (isCancelled.get()) return;
+        if (isCancelled.get()) {
+            metrics.fileCancelled();
+            return;
+        }
 
+        PipelineMetrics.FileEvent fileEvent = metrics.beginFile();
+        boolean success = false;
         try {
             switch (operation) {
                 case "/s":
@@ -180,45 +218,142 @@ public class ImageProcessor {
                     negateImage(file);
                     break;
                 case "/r":
-                    if (!file.delete()) {
-                        System.err.println("Failed to delete: " + file.getAbsolutePath());
-                    }
+                    deleteImage(file);
                     break;
                 case "/c":
                     copyImage(file, targetDir);
                     break;
             }
-        } catch (IOException e) {
+            success = true;
+        } catch (IOException | RuntimeException e) {
             System.err.println("Error processing " + file.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            metrics.fileFinished(fileEvent, file, operation, success);
         }
     }
 
     private static void scaleImage(File file, double scaleFactor) throws IOException {
-        BufferedImage img = ImageIO.read(file);
-        int newWidth = (int) (img.getWidth() * scaleFactor);
-        int newHeight = (int) (img.getHeight() * scaleFactor);
-        BufferedImage scaledImg = new BufferedImage(newWidth, newHeight, img.getType());
-        scaledImg.getGraphics().drawImage(img.getScaledInstance(newWidth, newHeight, java.awt.Image.SCALE_SMOOTH), 0, 0, null);
-        ImageIO.write(scaledImg, getFileExtension(file), file);
+        BufferedImage img = decodeImage(file, readImage(file));
+
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.TRANSFORM);
+        BufferedImage scaledImg;
+        try {
+            int newWidth = (int) (img.getWidth() * scaleFactor);
+            int newHeight = (int) (img.getHeight() * scaleFactor);
+            scaledImg = new BufferedImage(newWidth, newHeight, img.getType());
+            scaledImg.getGraphics().drawImage(img.getScaledInstance(newWidth, newHeight, java.awt.Image.SCALE_SMOOTH), 0, 0, null);
+        } catch (RuntimeException e) {
+            metrics.recordFailure(stage, file, e);
+            throw e;
+        }
+        metrics.record(stage, file, 0, (long) scaledImg.getWidth() * scaledImg.getHeight());
+
+        writeImage(file, encodeImage(file, scaledImg));
     }
 
     private static void negateImage(File file) throws IOException {
-        BufferedImage img = ImageIO.read(file);
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                int rgb = img.getRGB(x, y);
-                int r = 255 - ((rgb >> 16) & 0xFF);
-                int g = 255 - ((rgb >> 8) & 0xFF);
-                int b = 255 - (rgb & 0xFF);
-                img.setRGB(x, y, (r << 16) | (g << 8) | b);
+        BufferedImage img = decodeImage(file, readImage(file));
+
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.TRANSFORM);
+        try {
+            for (int y = 0; y < img.getHeight(); y++) {
+                for (int x = 0; x < img.getWidth(); x++) {
+                    int rgb = img.getRGB(x, y);
+                    int r = 255 - ((rgb >> 16) & 0xFF);
+                    int g = 255 - ((rgb >> 8) & 0xFF);
+                    int b = 255 - (rgb & 0xFF);
+                    img.setRGB(x, y, (r << 16) | (g << 8) | b);
+                }
             }
+        } catch (RuntimeException e) {
+            metrics.recordFailure(stage, file, e);
+            throw e;
+        }
+        metrics.record(stage, file, 0, (long) img.getWidth() * img.getHeight());
+
+        writeImage(file, encodeImage(file, img));
+    }
+
+    private static void deleteImage(File file) throws IOException {
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.WRITE);
+        long size = file.length();
+        if (!file.delete()) {
+            IOException e = new IOException("Failed to delete: " + file.getAbsolutePath());
+            metrics.recordFailure(stage, file, e);
+            throw e;
         }
-        ImageIO.write(img, getFileExtension(file), file);
+        metrics.record(stage, file, size, 0);
     }
 
     private static void copyImage(File file, String targetDir) throws IOException {
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.WRITE);
         Path targetPath = Paths.get(targetDir, file.getName());
-        Files.copy(file.toPath(), targetPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        long size = file.length();
+        try {
+            Files.copy(file.toPath(), targetPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            metrics.recordFailure(stage, file, e);
+            throw e;
+        }
+        metrics.record(stage, file, size, 0);
+    }
+
+    // The stages below are split out so each one shows up separately in the metrics
+    private static byte[] readImage(File file) throws IOException {
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.READ);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            metrics.recordFailure(stage, file, e);
+            throw e;
+        }
+        metrics.record(stage, file, data.length, 0);
+        return data;
+    }
+
+    private static BufferedImage decodeImage(File file, byte[] data) throws IOException {
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.DECODE);
+        BufferedImage img;
+        try {
+            // A memory-cached stream keeps ImageIO from spooling the buffer through a temp file;
+            // ImageIO.read closes it once an image has been read
+            img = ImageIO.read(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+            if (img == null) {
+                throw new IOException("Unsupported image format");
+            }
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(stage, file, e);
+            throw e;
+        }
+        metrics.record(stage, file, data.length, (long) img.getWidth() * img.getHeight());
+        return img;
+    }
+
+    private static byte[] encodeImage(File file, BufferedImage img) throws IOException {
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.ENCODE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = new MemoryCacheImageOutputStream(out)) {
+            if (!ImageIO.write(img, getFileExtension(file), imageOut)) {
+                throw new IOException("No writer for format: " + getFileExtension(file));
+            }
+        } catch (IOException | RuntimeException e) {
+            metrics.recordFailure(stage, file, e);
+            throw e;
+        }
+        metrics.record(stage, file, out.size(), (long) img.getWidth() * img.getHeight());
+        return out.toByteArray();
+    }
+
+    private static void writeImage(File file, byte[] data) throws IOException {
+        PipelineMetrics.StageTimer stage = metrics.beginStage(PipelineMetrics.Stage.WRITE);
+        try {
+            Files.write(file.toPath(), data);
+        } catch (IOException e) {
+            metrics.recordFailure(stage, file, e);
+            throw e;
+        }
+        metrics.record(stage, file, data.length, 0);
     }
 
     private static String getFileExtension(File file) {
@@ -0,0 +1,498 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stage timings, throughput, queue depth and failure counts for ImageProcessor.
+// JFR events are emitted once a recording exists and has them enabled; the in-process
+// histograms, progress line and JSON file only run when requested on the command line.
+// The two are independent: without a recording no JFR event class is loaded.
+public class PipelineMetrics {
+
+    public enum Stage { READ, DECODE, TRANSFORM, ENCODE, WRITE }
+
+    // Latency buckets: each power of two of nanoseconds is split into 16 linear
+    // sub-buckets, so a percentile is within about 3% of the real value
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final boolean enabled;
+    private final boolean printProgress;
+    private final Path jsonFile;
+
+    private final StageStats[] stages = new StageStats[Stage.values().length];
+    private final LongAdder filesSubmitted = new LongAdder();
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder filesCancelled = new LongAdder();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    // Set once a JFR recording exists; until then no event classes are touched at all
+    private volatile boolean recording;
+    private volatile BlockingQueue<?> queue;
+    private volatile long startNanos;
+    private ScheduledExecutorService reporter;
+    private Runnable progressHook;
+    private FlightRecorderListener recorderListener;
+
+    public PipelineMetrics(boolean printProgress, String jsonFile) {
+        this.printProgress = printProgress;
+        this.jsonFile = jsonFile != null ? Paths.get(jsonFile) : null;
+        this.enabled = printProgress || jsonFile != null;
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = new StageStats();
+        }
+    }
+
+    public void start(BlockingQueue<?> queue) {
+        this.queue = queue;
+        this.startNanos = System.nanoTime();
+
+        // JFR events and the periodic progress event are only used once a recording exists,
+        // so runs without one never initialize Flight Recorder
+        if (FlightRecorder.isAvailable()) {
+            recording = FlightRecorder.isInitialized();
+            if (recording) {
+                registerProgressHook();
+            } else {
+                recorderListener = new FlightRecorderListener() {
+                    @Override
+                    public void recorderInitialized(FlightRecorder recorder) {
+                        recording = true;
+                        registerProgressHook();
+                    }
+                };
+                FlightRecorder.addListener(recorderListener);
+            }
+        }
+
+        if (enabled) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(this::report, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (recorderListener != null) {
+                FlightRecorder.removeListener(recorderListener);
+                recorderListener = null;
+            }
+            if (progressHook != null) {
+                FlightRecorder.removePeriodicEvent(progressHook);
+                progressHook = null;
+            }
+        }
+        if (reporter != null) {
+            reporter.shutdownNow();
+            try {
+                reporter.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            report();
+        }
+    }
+
+    private synchronized void registerProgressHook() {
+        if (progressHook != null) {
+            return;
+        }
+        progressHook = () -> {
+            ProgressEvent event = new ProgressEvent();
+            event.submitted = filesSubmitted.sum();
+            event.completed = filesCompleted.sum();
+            event.failed = filesFailed.sum();
+            event.cancelled = filesCancelled.sum();
+            event.queueDepth = queueDepth();
+            event.commit();
+        };
+        FlightRecorder.addPeriodicEvent(ProgressEvent.class, progressHook);
+    }
+
+    public void fileSubmitted() {
+        filesSubmitted.increment();
+    }
+
+    // Called right after a task is handed to the executor, when the queue is at its
+    // fullest, so maxQueueDepth sees bursts that drain between progress reports
+    public void taskQueued() {
+        if (enabled) {
+            maxQueueDepth.accumulateAndGet(queueDepth(), Math::max);
+        }
+    }
+
+    // A submitted file that was skipped because the run was cancelled
+    public void fileCancelled() {
+        filesCancelled.increment();
+    }
+
+    // Returns null when no JFR recording exists
+    public FileEvent beginFile() {
+        if (!recording) {
+            return null;
+        }
+        FileEvent event = new FileEvent();
+        event.begin();
+        return event;
+    }
+
+    public void fileFinished(FileEvent event, File file, String operation, boolean success) {
+        (success ? filesCompleted : filesFailed).increment();
+        if (event == null) {
+            return;
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.getAbsolutePath();
+            event.operation = operation;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    // Starts timing a stage; the returned timer is passed to record or recordFailure when it ends.
+    // Returns null when neither metrics nor a JFR recording are active.
+    public StageTimer beginStage(Stage stage) {
+        if (!enabled && !recording) {
+            return null;
+        }
+        StageEvent event = null;
+        if (recording) {
+            event = new StageEvent();
+            event.begin();
+        }
+        return new StageTimer(stage, enabled ? System.nanoTime() : 0, event);
+    }
+
+    public void record(StageTimer timer, File file, long bytes, long pixels) {
+        if (timer == null) {
+            return;
+        }
+        if (enabled) {
+            stages[timer.stage.ordinal()].record(System.nanoTime() - timer.startNanos, bytes, pixels);
+        }
+
+        StageEvent event = timer.event;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = timer.stage.name();
+                event.file = file.getAbsolutePath();
+                event.bytes = bytes;
+                event.pixels = pixels;
+                event.commit();
+            }
+        }
+    }
+
+    public void recordFailure(StageTimer timer, File file, Exception e) {
+        if (timer == null) {
+            return;
+        }
+        Stage stage = timer.stage;
+        if (enabled) {
+            stages[stage.ordinal()].failureLatency.record(System.nanoTime() - timer.startNanos);
+        }
+
+        // The stage span is committed as failed so time lost to failures shows up in JFR too
+        StageEvent stageEvent = timer.event;
+        if (stageEvent == null) {
+            return;
+        }
+        stageEvent.end();
+        if (stageEvent.shouldCommit()) {
+            stageEvent.stage = stage.name();
+            stageEvent.file = file.getAbsolutePath();
+            stageEvent.failed = true;
+            stageEvent.commit();
+        }
+
+        StageFailureEvent event = new StageFailureEvent();
+        if (event.isEnabled()) {
+            event.stage = stage.name();
+            event.file = file.getAbsolutePath();
+            event.message = e.getMessage();
+            event.commit();
+        }
+    }
+
+    private long queueDepth() {
+        BlockingQueue<?> q = queue;
+        return q != null ? q.size() : 0;
+    }
+
+    private void report() {
+        long depth = queueDepth();
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+
+        if (printProgress) {
+            System.out.println(progressLine(depth, seconds));
+        }
+        if (jsonFile != null) {
+            try {
+                Path tmp = jsonFile.resolveSibling(jsonFile.getFileName() + ".tmp");
+                Files.write(tmp, toJson(depth, seconds).getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, jsonFile, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("Error writing metrics file: " + e.getMessage());
+            }
+        }
+    }
+
+    private String progressLine(long depth, double seconds) {
+        StageStats read = stages[Stage.READ.ordinal()];
+        StageStats decode = stages[Stage.DECODE.ordinal()];
+        StringBuilder sb = new StringBuilder();
+        long failed = filesFailed.sum();
+        long cancelled = filesCancelled.sum();
+        sb.append(String.format(Locale.ROOT, "[%.1fs] files %d/%d, failed %d, cancelled %d, queue %d, read %.2f MB/s, decode %.2f Mpx/s",
+                seconds, filesCompleted.sum() + failed + cancelled, filesSubmitted.sum(), failed, cancelled, depth,
+                read.bytes.sum() / seconds / 1e6, decode.pixels.sum() / seconds / 1e6));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram latency = stages[stage.ordinal()].latency;
+            if (latency.count() > 0) {
+                sb.append(String.format(Locale.ROOT, ", %s p50 %.1fms p99 %.1fms",
+                        stage.name().toLowerCase(Locale.ROOT), latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6));
+            }
+        }
+        return sb.toString();
+    }
+
+    private String toJson(long depth, double seconds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(String.format(Locale.ROOT, "  \"elapsedSeconds\": %.3f,\n", seconds));
+        sb.append("  \"filesSubmitted\": ").append(filesSubmitted.sum()).append(",\n");
+        sb.append("  \"filesCompleted\": ").append(filesCompleted.sum()).append(",\n");
+        sb.append("  \"filesFailed\": ").append(filesFailed.sum()).append(",\n");
+        sb.append("  \"filesCancelled\": ").append(filesCancelled.sum()).append(",\n");
+        sb.append("  \"queueDepth\": ").append(depth).append(",\n");
+        sb.append("  \"maxQueueDepth\": ").append(maxQueueDepth.get()).append(",\n");
+        sb.append("  \"stages\": {");
+        Stage[] values = Stage.values();
+        for (int i = 0; i < values.length; i++) {
+            StageStats stats = stages[values[i].ordinal()];
+            LatencyHistogram latency = stats.latency;
+            LatencyHistogram failureLatency = stats.failureLatency;
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    \"").append(values[i].name().toLowerCase(Locale.ROOT)).append("\": {");
+            sb.append("\"count\": ").append(latency.count());
+            sb.append(", \"meanNanos\": ").append(latency.mean());
+            sb.append(", \"p50Nanos\": ").append(latency.percentile(0.50));
+            sb.append(", \"p90Nanos\": ").append(latency.percentile(0.90));
+            sb.append(", \"p99Nanos\": ").append(latency.percentile(0.99));
+            sb.append(", \"maxNanos\": ").append(latency.max());
+            sb.append(", \"failures\": ").append(failureLatency.count());
+            sb.append(", \"failureTotalNanos\": ").append(failureLatency.total());
+            sb.append(", \"failureP50Nanos\": ").append(failureLatency.percentile(0.50));
+            sb.append(", \"failureMaxNanos\": ").append(failureLatency.max());
+            sb.append(", \"bytes\": ").append(stats.bytes.sum());
+            sb.append(String.format(Locale.ROOT, ", \"bytesPerSecond\": %.1f", stats.bytes.sum() / seconds));
+            sb.append(", \"pixels\": ").append(stats.pixels.sum());
+            sb.append(String.format(Locale.ROOT, ", \"pixelsPerSecond\": %.1f", stats.pixels.sum() / seconds));
+            sb.append("}");
+        }
+        sb.append("\n  }\n}\n");
+        return sb.toString();
+    }
+
+    // Handle for one running stage; the JFR event is only present while a recording exists
+    public static final class StageTimer {
+        private final Stage stage;
+        private final long startNanos;
+        private final StageEvent event;
+
+        private StageTimer(Stage stage, long startNanos, StageEvent event) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.event = event;
+        }
+    }
+
+    // Successful and failed runs of a stage are timed separately so failures do not skew the percentiles
+    private static class StageStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram failureLatency = new LatencyHistogram();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder pixels = new LongAdder();
+
+        void record(long nanos, long byteCount, long pixelCount) {
+            latency.record(nanos);
+            bytes.add(byteCount);
+            pixels.add(pixelCount);
+        }
+    }
+
+    private static class LatencyHistogram {
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            histogram.incrementAndGet(bucketIndex(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long total() {
+            return totalNanos.sum();
+        }
+
+        long mean() {
+            long n = count.sum();
+            return n > 0 ? totalNanos.sum() / n : 0;
+        }
+
+        long max() {
+            return maxNanos.get();
+        }
+
+        // Midpoint of the bucket holding the given quantile
+        long percentile(double quantile) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= target) {
+                    long lower = bucketLowerBound(i);
+                    long width = bucketLowerBound(i + 1) - lower;
+                    return Math.min(lower + width / 2, maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+
+        // Values below SUB_BUCKETS get one bucket each; above that the top
+        // SUB_BUCKET_BITS + 1 bits select the octave and the sub-bucket
+        static int bucketIndex(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long bucketLowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            if (index >= BUCKETS) {
+                return Long.MAX_VALUE;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+
+    @Name("javalabs.ImageStage")
+    @Label("Image Stage")
+    @Category({"JavaLabs", "ImageProcessor"})
+    @Description("One pipeline stage (read, decode, transform, encode, write) of a single image")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Pixels")
+        long pixels;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("javalabs.ImageStageFailure")
+    @Label("Image Stage Failure")
+    @Category({"JavaLabs", "ImageProcessor"})
+    static class StageFailureEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("javalabs.ImageFile")
+    @Label("Image File")
+    @Category({"JavaLabs", "ImageProcessor"})
+    static class FileEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("javalabs.ImageProgress")
+    @Label("Image Progress")
+    @Category({"JavaLabs", "ImageProcessor"})
+    @Period("1 s")
+    static class ProgressEvent extends Event {
+        @Label("Submitted")
+        long submitted;
+
+        @Label("Completed")
+        long completed;
+
+        @Label("Failed")
+        long failed;
+
+        @Label("Cancelled")
+        long cancelled;
+
+        @Label("Queue Depth")
+        long queueDepth;
+    }
+}